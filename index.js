@@ -161,6 +161,9 @@ function awaitData(driver, data) {
   return pending
 }
 
+// connection number of the unpinned pool, queries borrow a connection per statement
+const POOL_CONN = -1
+
 const defaults = {
   java: '/opt/java/openjdk/bin/java',
   jar: '/app/pipe/target/java-pipe-sql-0.0.1.jar',
@@ -171,6 +174,11 @@ const defaults = {
   connectionTimeoutMillis: 1000 * 10,
   idleTimeoutMillis: 0,
   query_timeout: 0,
+  statsMax: 1000,
+  statsDumpMillis: 0,
+  captureFile: '',
+  captureSample: 1,
+  captureRedact: false,
   max: 10,
 }
 
@@ -179,6 +187,7 @@ class Pool extends EventEmitter {
     super()
     this.client = 0
     this.clients = []
+    this.pooled = null
     this.querySubs = { }
     this.conf = Object.assign({}, defaults, conf)
     for (let key of Object.keys(conf)) {
@@ -215,6 +224,11 @@ class Pool extends EventEmitter {
     this.emit('retry', err)
   }
 
+  emitNotification(notification) {
+    if (this.ended) { return }
+    this.emit('notification', notification)
+  }
+
   async __boot() {
     this.exitHandle = () => this.end()
     process.once('exit', this.exitHandle)
@@ -228,14 +242,11 @@ class Pool extends EventEmitter {
       this.driver.stdout.once('end', () => this.emitError(new Error('stream end')))
       this.driver.stderr.on('data', (line) => this.onError(line).catch((err) => this.emitError(err)))
       this.driver.stdout.on('data', (line) => this.onData(line).catch((err) => this.emitError(err)))
-    }).then(() => {
-      const connecting = []
+      this.pooled = new Client(this, POOL_CONN)
       for (let i = 0; i < this.conf.max; i++) {
-        const client = new Client(this, i)
-        connecting.push(client.connect())
+        this.clients.push(new Client(this, i))
       }
-      return Promise.all(connecting)
-    }).then((clients) => this.clients = clients)
+    })
     this.driver.stdin.push(`boot\n`)
     const timeout = sleep(this.conf.bootTimeoutMillis)
     const result = await Promise.race([timeout, booting])
@@ -243,7 +254,7 @@ class Pool extends EventEmitter {
   }
 
   onClose(conn) {
-    this.clients[conn].release()
+    if (this.clients[conn]) { this.clients[conn].onClose() }
     const subs = Object.keys(this.querySubs).filter((qid) => {
       const qc = parseInt(qid.split(':')[0])
       return qc === conn
@@ -262,6 +273,7 @@ class Pool extends EventEmitter {
     let error = line.substring(idx1 + 1)
     if (conn === '*') { throw new Error(error) }
     if (conn === 'i') { return this.emitInfo(error) }
+    if (conn === 'n') { return this.onNotify(error) }
     conn = parseInt(conn)
     if (isNaN(conn)) { throw new Error(`driver says error: ${line}`) }
     const idx2 = line.indexOf(',', idx1 + 1)
@@ -274,6 +286,17 @@ class Pool extends EventEmitter {
     this.querySubs[qid].onError(new Error(error))
   }
 
+  // channel,payload,pid repeated for each notification in the batch
+  onNotify(data) {
+    const parts = data.split(',')
+    for (let i = 0; i + 2 < parts.length; i += 3) {
+      const channel = readCol('text', parts[i])
+      const payload = readCol('text', parts[i + 1])
+      const processId = parseInt(parts[i + 2])
+      this.emitNotification({ channel, payload, processId })
+    }
+  }
+
   async onData(line) {
     if (line.trim().length <= 0) { return }
     if (!line.includes(',')) { throw new Error('data has no connection number') }
@@ -302,30 +325,17 @@ class Pool extends EventEmitter {
     delete this.querySubs[qid]
   }
 
-  async nextClient(connect=true, begin=0) {
+  async nextClient(begin=0) {
     if (begin <= 0) { begin = Date.now() }
     const diff = (Date.now() - begin) - 1000
     if (diff >= this.conf.connectionTimeoutMillis) { return null }
-    const okQuery = (client) => client.connected && !client.busy
-    const okConnect = (client) => client.connected && client.inflight <= 0 && !client.busy
-    let cidx = this.client++ % this.clients.length
-    let client = this.clients[cidx]
-    if (!connect && okQuery(client)) {
-      return client
-    } else if (connect && okConnect(client)) {
-      return client
-    }
-    for (let i = 0; i < this.conf.max; i++) {
-      cidx = this.client++ % this.clients.length
-      client = this.clients[cidx]
-      if (!connect && okQuery(client)) {
-        return client
-      } else if (connect && okConnect(client)) {
-        return client
-      }
+    const okConnect = (client) => !client.connected && !client.connecting && !client.opening && !client.busy && !client.draining
+    for (let i = 0; i < this.clients.length; i++) {
+      const client = this.clients[this.client++ % this.clients.length]
+      if (okConnect(client)) { return client }
     }
     await sleep(10)
-    return this.nextClient(connect, begin)
+    return this.nextClient(begin)
   }
 
   connect(again=true) {
@@ -337,34 +347,92 @@ class Pool extends EventEmitter {
         sleep(this.conf.connectionTimeoutMillis)
           .then(() => { timedout = true; rej(new Error('timeout exceeded when trying to connect')) })
       }
-      const client = await this.nextClient(true)
+      const client = await this.nextClient()
       if (timedout || !client) { return }
       client.busy = true
-      res(client)
+      client.connect().then(() => {
+        if (timedout) { return client.release() }
+        res(client)
+      }).catch((err) => {
+        client.busy = false
+        rej(err)
+      })
     })
   }
 
   query(query, args=[], again=true) {
-    let timedout = false
     if (this.bootFailed) { return Promise.reject(new Error('boot failed, check pool for error events')) }
     if (again) { return this.booting.then(() => this.query(query, args, false)) }
     return new Promise(async (res, rej) => {
       if (this.conf.query_timeout > 0) {
         sleep(this.conf.query_timeout)
-          .then(() => { timedout = true; rej(new Error('Query read timeout')) })
+          .then(() => rej(new Error('Query read timeout')))
       }
-      const client = await this.nextClient(false)
-      if (timedout || !client) { return }
-      client.query(query, args, true).then(res).catch(rej)
+      this.pooled.query(query, args, true).then(res).catch(rej)
     })
   }
 
+  top(metric='total_time', count=10, again=true) {
+    if (this.bootFailed) { return Promise.reject(new Error('boot failed, check pool for error events')) }
+    if (again) { return this.booting.then(() => this.top(metric, count, false)) }
+    return this.pooled.top(metric, count).then((data) => data.rows)
+  }
+
+  listen(channel, again=true) {
+    if (this.bootFailed) { return Promise.reject(new Error('boot failed, check pool for error events')) }
+    if (again) { return this.booting.then(() => this.listen(channel, false)) }
+    return this.pooled.listen(channel, true).then(() => undefined)
+  }
+
+  unlisten(channel, again=true) {
+    if (this.bootFailed) { return Promise.reject(new Error('boot failed, check pool for error events')) }
+    if (again) { return this.booting.then(() => this.unlisten(channel, false)) }
+    return this.pooled.listen(channel, false).then(() => undefined)
+  }
+
+  async resize(conf={}, again=true) {
+    if (this.bootFailed) { throw new Error('boot failed, check pool for error events') }
+    if (again) { await this.booting; return this.resize(conf, false) }
+    const keys = ['max', 'threads', 'idleTimeoutMillis', 'connectionTimeoutMillis']
+    for (let key of Object.keys(conf)) {
+      if (keys.indexOf(key) < 0) { throw new Error(`resize ${key} not implemented`) }
+    }
+    conf = Object.assign({}, conf)
+    if (conf.max !== undefined && !conf.threads) { conf.threads = Math.max(1 + (4 * conf.max), 1 + 10) }
+
+    await this.pooled.resize(conf)
+    Object.assign(this.conf, conf)
+
+    // grow by undraining then adding clients, shrink by draining clients above max
+    const max = this.conf.max
+    for (let i = 0; i < Math.max(max, this.clients.length); i++) {
+      const next = this.clients[i]
+      if (i >= max) {
+        if (next.draining) { continue }
+        next.drain().then(() => this.trim())
+      } else if (next && next.draining) {
+        next.draining = false
+      } else if (!next) {
+        this.clients[i] = new Client(this, i)
+      }
+    }
+  }
+
+  trim() {
+    while (this.clients.length > this.conf.max) {
+      const last = this.clients[this.clients.length - 1]
+      if (!last.draining || last.connected || last.busy || last.opening) { return }
+      this.clients.pop()
+    }
+  }
+
   end() {
     process.off('exit', this.exitHandle)
     this.removeAllListeners('booted')
     this.removeAllListeners('error')
     this.removeAllListeners('info')
     this.removeAllListeners('retry')
+    this.removeAllListeners('notification')
     if (this.driver) { this.driver.kill() }
     if (!this.ended) { this.emit('end') }
     this.removeAllListeners('end')
@@ -380,9 +448,11 @@ class Client {
     this.driver = pool.driver
     this.pending = Promise.resolve()
     this.connecting = false
-    this.connected = false
+    this.opening = false
+    this.connected = conn === POOL_CONN
     this.inflight = 0
     this.busy = false
+    this.draining = false
     this.conn = conn
     this.qid = 0
   }
@@ -392,7 +462,13 @@ class Client {
     if (timeout > 0) { timeout = sleep(timeout) }
     else { timeout = null }
     const cmd = `${this.conn},connect`
-    const ack = awaitData(this.driver, cmd).then(() => this.connected = true)
+    // the slot is not handed out again until the runtime acks or fails this connect, even after a timeout
+    this.opening = true
+    const ack = awaitData(this.driver, cmd).finally(() => this.opening = false).then(() => {
+      // ack arrived after the checkout was given up, return the connection
+      if (!this.busy) { return this.driver.stdin.push(`${this.conn},close\n`) }
+      this.connected = true
+    })
     this.driver.stdin.push(`${cmd}\n`)
     if (!timeout) { return ack }
     const result = await Promise.race([timeout, ack])
@@ -401,6 +477,7 @@ class Client {
   }
 
   async reconnect() {
+    if (this.draining) { return }
     if (this.connected) { return }
     if (this.connecting) { return }
     if (this.pool.ended) { return }
@@ -459,6 +536,10 @@ class Client {
     cmd = cmd.replaceAll(';', '').trim()
     const cmds = ['begin', 'commit', 'rollback']
     cmd = cmds.indexOf(cmd)
+    if (cmd >= 0 && this.conn === POOL_CONN) {
+      --this.inflight
+      return Promise.reject(new Error('transactions require a client from pool.connect()'))
+    }
     if (cmd >= 0) {
       const res = this.__cmd(cmds[cmd]).catch((err) => {
         if (err.message.includes('Query read timeout')) { return Promise.reject(err) }
@@ -474,6 +555,44 @@ class Client {
     // query
     let qid = this.qid++
     qid = `${this.conn}:${qid}`
+    let name = again > 0 ? 'retry' : 'query'
+    if (this.conn === POOL_CONN) { name = again > 0 ? 'pretry' : 'pquery' }
+    let line = `${this.conn},${name},${qid.split(':')[1]},${encode(query)}`
+    if (args.length > 0) { line = `${line},${encodeArr(args)}` }
+    return this.__request(qid, line).then((data) => {
+      this.inflight--
+      return data
+    }).catch((err) => {
+      this.inflight--
+      if (err.message.includes('Query read timeout')) { return Promise.reject(err) }
+      if (!retry || again >= retry) { return Promise.reject(err) }
+      this.pool.emitRetry(err)
+      return sleep(this.conf.retryDelayMillis)
+        .then(() => this.__query(query, args, again + 1))
+    })
+  }
+
+  resize(conf) {
+    let qid = this.qid++
+    qid = `${this.conn}:${qid}`
+    const args = ['max', 'threads', 'idleTimeoutMillis', 'connectionTimeoutMillis'].map((key) => conf[key] ?? '')
+    return this.__request(qid, `${this.conn},resize,${qid.split(':')[1]},${args.join(',')}`)
+  }
+
+  listen(channel, listen=true) {
+    let qid = this.qid++
+    qid = `${this.conn}:${qid}`
+    const cmd = listen ? 'listen' : 'unlisten'
+    return this.__request(qid, `${this.conn},${cmd},${qid.split(':')[1]},${encode(channel)}`)
+  }
+
+  top(metric='total_time', count=10) {
+    let qid = this.qid++
+    qid = `${this.conn}:${qid}`
+    return this.__request(qid, `${this.conn},top,${qid.split(':')[1]},${metric},${count}`)
+  }
+
+  __request(qid, cmd) {
     return new Promise((res, rej) => {
       let [count1, count2, cols, rows] = [null, null, null, null]
       this.pool.sub(qid, rej, async (data) => {
@@ -504,31 +623,32 @@ class Client {
         cols = parts.slice(2)
         if (count2 <= 0) { res({rowCount: count1, rows}) }
       })
-      let qidd = qid.split(':')[1]
-      let cmd = `${this.conn},query,${qidd},${encode(query)}`
-      if (args.length > 0) { cmd = `${cmd},${encodeArr(args)}` }
       this.driver.stdin.push(`${cmd}\n`)
     }).then((data) => {
-      this.inflight--
       this.pool.unsub(qid)
       return data
     }).catch((err) => {
-      this.inflight--
       this.pool.unsub(qid)
-      if (err.message.includes('Query read timeout')) { return Promise.reject(err) }
-      if (!retry || again >= retry) { return Promise.reject(err) }
-      this.pool.emitRetry(err)
-      return sleep(this.conf.retryDelayMillis)
-        .then(() => this.__query(query, args, again + 1))
+      return Promise.reject(err)
     })
   }
 
+  // wait for the checkout to be released, clients above max are not handed out again
+  async drain() {
+    this.draining = true
+    while ((this.busy || this.connecting || this.opening) && this.draining && !this.pool.ended) { await sleep(10) }
+  }
+
+  onClose() {
+    this.connected = false
+    if (this.busy) { this.reconnect() }
+  }
+
   release() {
     this.connected = this.busy = false
     this.pending = Promise.resolve()
     this.inflight = 0
     this.driver.stdin.push(`${this.conn},close\n`)
-    this.reconnect()
   }
 }
 
@@ -0,0 +1,164 @@
+package app.velodata;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+public class Capture implements Runnable {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final Pattern DATE = Pattern.compile("\\d{4}-\\d{2}-\\d{2}([T ]\\d{2}:\\d{2}.*)?");
+    private static final Pattern NUMBER = Pattern.compile("-?\\d+(\\.\\d+)?");
+    private final LinkedBlockingDeque<String> lines = new LinkedBlockingDeque<>();
+    private final Map<String, Long> sampled = new ConcurrentHashMap<>();
+    private final BufferedWriter writer;
+    private final double sample;
+    private final boolean redact;
+    private final long begin = System.nanoTime();
+    private String last = null;
+    private boolean closed = false;
+
+    public Capture(String path, double sample, boolean redact) throws IOException {
+        this.writer = new BufferedWriter(new FileWriter(path), BUFFER_SIZE);
+        this.sample = sample;
+        this.redact = redact;
+    }
+
+    private long micros() {
+        return (System.nanoTime() - begin) / 1000;
+    }
+
+    private static boolean isQuery(String command) {
+        return command.equals("query") || command.equals("retry") || command.equals("pquery") || command.equals("pretry");
+    }
+
+    // node sends dates and json as strings too, keep their shape so the redacted value still binds
+    private static String redactString(String str) {
+        String trimmed = str.trim();
+        if (trimmed.startsWith("{")) { return "{}"; }
+        if (trimmed.startsWith("[")) { return "[]"; }
+        if (DATE.matcher(trimmed).matches()) { return trimmed.length() > 10 ? "1970-01-01T00:00:00Z" : "1970-01-01"; }
+        if (NUMBER.matcher(trimmed).matches()) { return "0"; }
+        if (trimmed.equals("true") || trimmed.equals("false")) { return trimmed; }
+        return "x".repeat(str.length());
+    }
+
+    // keep the type prefix so replay binds the same sql types
+    private static String redactArg(String arg) {
+        if (arg.isEmpty() || arg.equals("true") || arg.equals("false")) { return arg; }
+        switch (arg.charAt(0)) {
+            case 's':
+                try {
+                    String decoded = new String(Base64.getDecoder().decode(arg.substring(1)));
+                    if (decoded.equals("\"\"")) { return arg; }
+                    return "s" + Base64.getEncoder().encodeToString(redactString(decoded).getBytes());
+                } catch (Exception e) {
+                    return "s";
+                }
+            case 'j':
+                return "j" + Base64.getEncoder().encodeToString("{}".getBytes());
+            case 't':
+                return "t1970-01-01T00:00:00Z";
+            default:
+                return "0";
+        }
+    }
+
+    // conn,query,qid,sQuery,arg1,arg2 -> args after the query are redacted
+    private static String redactFrame(String[] parts) {
+        StringBuilder out = new StringBuilder(parts[0]);
+        for (int i = 1; i < parts.length; i++) {
+            out.append(",").append(i >= 4 ? redactArg(parts[i]) : parts[i]);
+        }
+        return out.toString();
+    }
+
+    // called from the stdin thread only, last is the key of the frame being handled
+    public void input(String frame) {
+        last = null;
+        String[] parts = frame.split(",", -1);
+        if (parts.length >= 3 && isQuery(parts[1])) {
+            if (sample < 1 && ThreadLocalRandom.current().nextDouble() >= sample) { return; }
+            last = parts[0] + "," + parts[2];
+            sampled.put(last, System.nanoTime());
+            if (redact) { frame = redactFrame(parts); }
+        }
+        lines.add(micros() + ",i," + frame);
+    }
+
+    // the frame being handled was rejected by Runtime before it reached Queries
+    public void rejected() {
+        String key = last;
+        last = null;
+        if (key == null) { return; }
+        Long received = sampled.remove(key);
+        if (received == null) { return; }
+        long micros = (System.nanoTime() - received) / 1000;
+        lines.add(micros() + ",o," + key + "," + micros + ",error,0");
+    }
+
+    // reply time is from reading the frame to queueing the reply, it excludes output scheduling and the pipe
+    // replay measures to reading the reply so its times also include those
+    public void reply(Integer connNum, String queryId, boolean ok, long rows) {
+        Long received = sampled.remove(connNum + "," + queryId);
+        if (received == null) { return; }
+        long micros = (System.nanoTime() - received) / 1000;
+        lines.add(micros() + ",o," + connNum + "," + queryId + "," + micros + "," + (ok ? "ok" : "error") + "," + rows);
+    }
+
+    private synchronized void write(String line) throws IOException {
+        if (closed) { return; }
+        writer.write(line);
+        writer.newLine();
+    }
+
+    private synchronized void flush() throws IOException {
+        if (closed) { return; }
+        writer.flush();
+    }
+
+    // drains what is queued, used on interrupt and from the shutdown hook on SIGTERM
+    public synchronized void close() {
+        if (closed) { return; }
+        try {
+            String next;
+            while ((next = lines.poll()) != null) { write(next); }
+            writer.close();
+        } catch (IOException ignore) { }
+        closed = true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            boolean hasData = false;
+
+            while (true) {
+
+                if (lines.isEmpty() && hasData) {
+                    flush();
+                    hasData = false;
+                }
+
+                write(lines.take());
+                hasData = true;
+
+            }
+        } catch (InterruptedException ignore) {
+        } catch (Exception e) {
+            String error = e.getMessage();
+            if (error == null) { error = e.getClass().getName(); }
+            error = error.replace("\n", " ").replace(",", " ");
+            System.err.println("\ni,exiting capture loop: " + error);
+        } finally {
+            close();
+        }
+    }
+
+}
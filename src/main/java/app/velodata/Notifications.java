@@ -0,0 +1,180 @@
+package app.velodata;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Base64;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// one dedicated connection outside the pool, listen and unlisten run on the loop thread between polls
+public class Notifications implements Runnable {
+
+    private static final int POLL_MILLIS = 200;
+    private static final int RECONNECT_MILLIS = 1000;
+    private static final int BATCH_SIZE = 1000;
+
+    private static class Request {
+        final Integer connNum;
+        final String queryId;
+        final String channel;
+        final boolean listen;
+
+        Request(Integer connNum, String queryId, String channel, boolean listen) {
+            this.connNum = connNum;
+            this.queryId = queryId;
+            this.channel = channel;
+            this.listen = listen;
+        }
+    }
+
+    private final LinkedBlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    private final Set<String> channels = new LinkedHashSet<>();
+    private final Outbox output;
+    private final String url;
+    private final String user;
+    private final String password;
+    private Connection conn;
+    private volatile boolean stopped = false;
+
+    public Notifications(Outbox output, String url, String user, String password) {
+        this.output = output;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+    }
+
+    public void listen(Integer connNum, String queryId, String channel) {
+        requests.add(new Request(connNum, queryId, channel, true));
+    }
+
+    public void unlisten(Integer connNum, String queryId, String channel) {
+        requests.add(new Request(connNum, queryId, channel, false));
+    }
+
+    // getNotifications does not see interrupts, the loop checks this at most POLL_MILLIS later
+    public void stop() {
+        stopped = true;
+    }
+
+    private static String quote(String channel) {
+        return "\"" + channel.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String encode(String str) {
+        if (str == null) { return ""; }
+        if (str.isEmpty()) { str = "\"\""; }
+        return "s" + Base64.getEncoder().encodeToString(str.getBytes());
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    private void connect() throws SQLException {
+        conn = DriverManager.getConnection(url, user, password);
+        for (String channel : channels) { execute("LISTEN " + quote(channel)); }
+    }
+
+    private void disconnect() {
+        try {
+            if (conn != null) { conn.close(); }
+        } catch (Exception ignore) { }
+        conn = null;
+    }
+
+    private static String readError(Exception e) {
+        String error = e.getMessage();
+        if (error == null) { error = e.getClass().getName(); }
+        return error.replace("\n", " ").replace(",", " ");
+    }
+
+    private void queueError(Integer connNum, String queryId, Exception e) {
+        output.add("e:" + connNum + "," + queryId + "," + readError(e));
+    }
+
+    // a failed listen only drops the channel if this request added it, earlier registrations stay for reconnect
+    private void handle(Request request) {
+        boolean added = false;
+        try {
+            if (request.listen) {
+                added = channels.add(request.channel);
+                if (conn == null) {
+                    connect();
+                } else if (added) {
+                    execute("LISTEN " + quote(request.channel));
+                }
+            } else if (channels.remove(request.channel) && conn != null) {
+                execute("UNLISTEN " + quote(request.channel));
+            }
+            output.add("o:" + request.connNum + "," + request.queryId + ",0,0");
+        } catch (SQLException e) {
+            if (added) { channels.remove(request.channel); }
+            queueError(request.connNum, request.queryId, e);
+            disconnect();
+        }
+    }
+
+    // everything already received is returned together so bursts go out as few lines
+    private void poll() throws SQLException {
+        PGNotification[] notes = conn.unwrap(PGConnection.class).getNotifications(POLL_MILLIS);
+        if (notes == null) { return; }
+        for (int i = 0; i < notes.length; i += BATCH_SIZE) {
+            StringBuilder line = new StringBuilder("n:n");
+            for (int j = i; j < Math.min(i + BATCH_SIZE, notes.length); j++) {
+                line.append(",").append(encode(notes[j].getName()));
+                line.append(",").append(encode(notes[j].getParameter()));
+                line.append(",").append(notes[j].getPID());
+            }
+            output.add(line.toString());
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stopped && !Thread.currentThread().isInterrupted()) {
+
+                Request request;
+                while ((request = requests.poll()) != null) { handle(request); }
+
+                if (conn == null && !channels.isEmpty()) {
+                    try {
+                        connect();
+                        output.add("i:i,notifications reconnected");
+                    } catch (SQLException e) {
+                        disconnect();
+                        TimeUnit.MILLISECONDS.sleep(RECONNECT_MILLIS);
+                        continue;
+                    }
+                }
+
+                if (conn == null) {
+                    request = requests.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (request != null) { handle(request); }
+                    continue;
+                }
+
+                try {
+                    poll();
+                } catch (SQLException e) {
+                    output.add("i:i,notifications connection lost: " + readError(e));
+                    disconnect();
+                }
+
+            }
+        } catch (InterruptedException ignore) {
+        } finally {
+            disconnect();
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package app.velodata;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// control replies and small results go out first, large results share the pipe by deficit round robin on bytes
+// after every QUANTUM_BYTES of control while large results wait, they get STREAM_SHARE_BYTES so they cannot starve
+public class Outbox {
+
+    private static final int SMALL_BYTES = 8 * 1024;
+    private static final int QUANTUM_BYTES = 64 * 1024;
+    private static final int STREAM_SHARE_BYTES = QUANTUM_BYTES / 4;
+
+    private static class Stream {
+        final Deque<String> lines;
+        long deficit = 0;
+        boolean turn = false;
+
+        Stream(List<String> lines) { this.lines = new ArrayDeque<>(lines); }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final Deque<String> control = new ArrayDeque<>();
+    private final Deque<Stream> streams = new ArrayDeque<>();
+    private boolean boundary = false;
+    private long controlRun = 0;
+    private long streamOwed = 0;
+
+    public void add(String line) {
+        lock.lock();
+        try {
+            control.add(line);
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void stream(List<String> lines, long bytes) {
+        if (lines.isEmpty()) { return; }
+        lock.lock();
+        try {
+            if (bytes <= SMALL_BYTES) {
+                control.addAll(lines);
+            } else {
+                streams.add(new Stream(lines));
+            }
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return control.isEmpty() && streams.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // true when the last line taken should not sit in the write buffer behind a large result
+    public boolean isBoundary() {
+        lock.lock();
+        try {
+            return boundary;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (control.isEmpty() && streams.isEmpty()) { ready.await(); }
+
+            if (!control.isEmpty() && (streams.isEmpty() || streamOwed <= 0)) {
+                String next = control.poll();
+                if (!streams.isEmpty()) {
+                    controlRun += next.length();
+                    if (controlRun >= QUANTUM_BYTES) {
+                        controlRun = 0;
+                        streamOwed = STREAM_SHARE_BYTES;
+                    }
+                }
+                boundary = control.isEmpty() && !streams.isEmpty();
+                return next;
+            }
+
+            while (true) {
+                Stream stream = streams.peekFirst();
+                String next = stream.lines.peekFirst();
+                if (!stream.turn) {
+                    stream.deficit += QUANTUM_BYTES;
+                    stream.turn = true;
+                }
+                if (next.length() > stream.deficit && streams.size() > 1) {
+                    stream.turn = false;
+                    streams.addLast(streams.pollFirst());
+                    continue;
+                }
+                stream.lines.pollFirst();
+                stream.deficit = Math.max(0, stream.deficit - next.length());
+                streamOwed = Math.max(0, streamOwed - next.length());
+                if (control.isEmpty()) { controlRun = 0; }
+                boundary = false;
+                if (stream.lines.isEmpty()) {
+                    streams.pollFirst();
+                    boundary = !streams.isEmpty();
+                }
+                if (streams.isEmpty()) { streamOwed = 0; }
+                return next;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
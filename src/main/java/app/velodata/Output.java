@@ -2,16 +2,15 @@ package app.velodata;
 
 import java.io.BufferedWriter;
 import java.io.OutputStreamWriter;
-import java.util.concurrent.LinkedBlockingDeque;
 
 public class Output implements Runnable {
 
     private static final int BUFFER_SIZE = 1024 * 1024;
-    private final LinkedBlockingDeque<String> output;
+    private final Outbox output;
     private final BufferedWriter stderr;
     private final BufferedWriter stdout;
 
-    public Output(LinkedBlockingDeque<String> output) {
+    public Output(Outbox output) {
         this.stderr = new BufferedWriter(new OutputStreamWriter(System.err), BUFFER_SIZE);
         this.stdout = new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE);
         this.output = output;
@@ -25,14 +24,14 @@ public class Output implements Runnable {
 
             while (true) {
 
-                if (output.isEmpty()) {
+                if (output.isEmpty() || output.isBoundary()) {
                     if (errHasData) { stderr.flush(); }
                     if (outHasData) { stdout.flush(); }
                     errHasData = outHasData = false;
                 }
 
                 String next = output.take();
-                if (next.startsWith("e:") || next.startsWith("i:")) {
+                if (next.startsWith("e:") || next.startsWith("i:") || next.startsWith("n:")) {
                     stderr.write(next.substring(2));
                     stderr.newLine();
                     errHasData = true;
@@ -9,21 +9,29 @@ import java.time.Instant;
 import java.time.format.DateTimeParseException;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingDeque;
+import javax.sql.DataSource;
 
 public class Queries {
 
     private final ExecutorService threads;
-    private final LinkedBlockingDeque<String> output;
+    private final ExecutorService borrowers;
+    private final Outbox output;
+    private final DataSource pool;
     private final Map<Integer, Connection> connections;
     private final Set<Integer> txns;
+    private final Stats stats;
+    private final Capture capture;
     private final int queryTimeout;
 
-    public Queries(ExecutorService threads, LinkedBlockingDeque<String> output, Map<Integer, Connection> connections, Set<Integer> txns, int queryTimeout) {
+    public Queries(ExecutorService threads, ExecutorService borrowers, Outbox output, DataSource pool, Map<Integer, Connection> connections, Set<Integer> txns, Stats stats, Capture capture, int queryTimeout) {
         this.threads = threads;
+        this.borrowers = borrowers;
         this.output = output;
+        this.pool = pool;
         this.connections = connections;
         this.txns = txns;
+        this.stats = stats;
+        this.capture = capture;
         this.queryTimeout = queryTimeout;
     }
 
@@ -190,15 +198,20 @@ public class Queries {
         return result;
     }
 
-    public void queue(Integer connNum, String queryId, Connection conn, String query, List<String> args) throws AppException {
+    // conn is null for pool queries, a connection is borrowed from the pool for the duration of the task
+    // borrowers has max threads so pool queries wait in its queue rather than on threads pinned queries need
+    public void queue(Integer connNum, String queryId, Connection conn, String query, List<String> args, boolean retry) throws AppException {
+        String fingerprint = Stats.fingerprint(query);
         try {
 
             args = prepQuery(query, args);
             query = args.get(0);
             args = args.subList(1, args.size());
-            threads.submit(new QueryTask(connNum, queryId, conn, query, args));
+            ExecutorService executor = conn == null ? borrowers : threads;
+            executor.submit(new QueryTask(connNum, queryId, conn, query, args, fingerprint, retry));
 
         } catch (Exception e) {
+            stats.recordRejected(fingerprint, retry);
             throw new AppException(connNum, queryId, e);
         }
     }
@@ -209,13 +222,19 @@ public class Queries {
         private final Connection conn;
         private final String query;
         private final List<String> args;
+        private final String fingerprint;
+        private final boolean retry;
+        private final List<String> lines = new ArrayList<>();
+        private long bytes = 0;
 
-        public QueryTask(Integer connNum, String queryId, Connection conn, String query, List<String> args) {
+        public QueryTask(Integer connNum, String queryId, Connection conn, String query, List<String> args, String fingerprint, boolean retry) {
             this.connNum = connNum;
             this.queryId = queryId;
             this.conn = conn;
             this.query = query;
             this.args = args;
+            this.fingerprint = fingerprint;
+            this.retry = retry;
         }
 
         private List<String[]> run(PreparedStatement stmt) throws SQLException {
@@ -273,7 +292,9 @@ public class Queries {
         }
 
         private void queueOutput(String data) {
-            output.add("o:" + connNum + "," + queryId + data);
+            String next = "o:" + connNum + "," + queryId + data;
+            bytes += next.length() - 1;
+            lines.add(next);
         }
 
         private void queueStackTrace(Exception e) {
@@ -294,7 +315,7 @@ public class Queries {
 
         private void queueError(String error) {
             error = error.replace("\n", " ").replace(",", " ");
-            if (error.toLowerCase().contains("closed")) {
+            if (conn != null && error.toLowerCase().contains("closed")) {
                 handleClose();
                 output.add("e:" + connNum + ",closed");
                 output.add("i:i,connection " + connNum + " closed unexpectedly");
@@ -310,18 +331,44 @@ public class Queries {
             queueStackTrace(e);
         }
 
-        @Override
-        public void run() {
+        private List<String[]> run(Connection conn) throws SQLException {
             try (PreparedStatement stmt = conn.prepareStatement(query)) {
                 stmt.setQueryTimeout(queryTimeout);
+                return run(stmt);
+            }
+        }
+
+        private List<String[]> execute() throws SQLException {
+            if (conn != null) { return run(conn); }
+            try (Connection borrowed = pool.getConnection()) {
+                return run(borrowed);
+            }
+        }
+
+        private void record(long begin, boolean ok, long rows) {
+            long nanos = System.nanoTime() - begin;
+            if (ok) {
+                stats.record(fingerprint, retry, nanos, rows, bytes);
+            } else {
+                stats.recordError(fingerprint, retry, nanos);
+            }
+            if (capture != null) { capture.reply(connNum, queryId, ok, rows); }
+        }
+
+        @Override
+        public void run() {
+            long begin = System.nanoTime();
+            try {
 
-                List<String[]> result = run(stmt);
+                List<String[]> result = execute();
                 String[] cols = result.get(0);
                 String[] counts = result.get(1);
                 List<String[]> rows = result.subList(2, result.size());
 
                 if (cols == null) {
                     queueOutput("," + counts[0] + "," + counts[1]);
+                    output.stream(lines, bytes);
+                    record(begin, true, 0);
                     return;
                 }
 
@@ -334,11 +381,18 @@ public class Queries {
                     for (String val : row) { data.append(",").append(val); }
                     queueOutput(data.toString());
                 }
+                output.stream(lines, bytes);
+                record(begin, true, rows.size());
 
             } catch (SQLTimeoutException e1) {
+                record(begin, false, 0);
                 queueError("Query read timeout");
-            } catch (Exception e2) {
-                queueError(e2);
+            } catch (SQLTransientConnectionException e2) {
+                record(begin, false, 0);
+                queueError("timeout exceeded when trying to connect");
+            } catch (Exception e3) {
+                record(begin, false, 0);
+                queueError(e3);
             }
         }
     }
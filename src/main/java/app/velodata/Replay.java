@@ -0,0 +1,219 @@
+package app.velodata;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+// java -cp java-pipe-sql.jar app.velodata.Replay capture.log [speed]
+// speed 1 replays at original timing, 10 is ten times faster, 0 sends as fast as possible
+public class Replay {
+
+    private static final long DRAIN_TIMEOUT_MS = 30 * 1000;
+    private static final List<String> COMMANDS = List.of("connect", "begin", "commit", "rollback");
+
+    private final Map<String, Long> pending = new ConcurrentHashMap<>();
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> errors = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch booted = new CountDownLatch(1);
+
+    // Client waits for the ack of connect, begin, commit and rollback before its next frame, so replay does too
+    private final Set<String> awaiting = new HashSet<>();
+    private final Map<String, Deque<String>> held = new HashMap<>();
+    private BufferedWriter stdin;
+
+    private static boolean isQuery(String command) {
+        return command.equals("query") || command.equals("retry") || command.equals("pquery") || command.equals("pretry");
+    }
+
+    // replies and errors for a query start with conn,qid
+    private static String readKey(String frame) {
+        String[] parts = frame.split(",", 4);
+        if (parts.length < 3 || !isQuery(parts[1])) { return null; }
+        return parts[0] + "," + parts[2];
+    }
+
+    private synchronized void write(String frame) throws IOException {
+        String[] parts = frame.split(",", 3);
+        String key = readKey(frame);
+        if (key != null) { pending.put(key, System.nanoTime()); }
+        if (parts.length == 2 && COMMANDS.contains(parts[1])) { awaiting.add(parts[0]); }
+        stdin.write(frame);
+        stdin.newLine();
+        stdin.flush();
+    }
+
+    private synchronized void send(String frame) throws IOException {
+        String conn = frame.split(",", 2)[0];
+        if (awaiting.contains(conn)) {
+            held.computeIfAbsent(conn, (c) -> new ArrayDeque<>()).add(frame);
+            return;
+        }
+        write(frame);
+    }
+
+    private synchronized void onAck(String conn) {
+        if (!awaiting.remove(conn)) { return; }
+        Deque<String> frames = held.get(conn);
+        try {
+            while (frames != null && !frames.isEmpty() && !awaiting.contains(conn)) { write(frames.poll()); }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private synchronized int heldCount() {
+        int count = 0;
+        for (Deque<String> frames : held.values()) { count += frames.size(); }
+        return count;
+    }
+
+    private void onReply(String line, boolean error) {
+        long now = System.nanoTime();
+        if (line.equals("boot")) {
+            booted.countDown();
+            return;
+        }
+        String[] parts = line.split(",", 3);
+        if (parts.length < 2) { return; }
+        // command acks are conn,command and command errors are conn,error
+        if (parts.length == 2 && (error || COMMANDS.contains(parts[1]))) {
+            onAck(parts[0]);
+            return;
+        }
+        Long sent = pending.remove(parts[0] + "," + parts[1]);
+        if (sent == null) { return; }
+        if (error) {
+            errors.add(now - sent);
+        } else {
+            latencies.add(now - sent);
+        }
+    }
+
+    private Thread read(InputStream stream, boolean error) {
+        Thread thread = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
+                String line;
+                while ((line = reader.readLine()) != null) { onReply(line, error); }
+            } catch (IOException | UncheckedIOException ignore) { }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static Process spawn() throws IOException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Runtime.class.getName());
+        Map<String, String> env = builder.environment();
+        env.putIfAbsent("max", "10");
+        env.putIfAbsent("threads", "41");
+        env.putIfAbsent("connection_timeout_millis", "10000");
+        env.putIfAbsent("idle_timeout_millis", "0");
+        env.putIfAbsent("query_timeout", "10000");
+        env.putIfAbsent("keep_alive_millis", "0");
+        env.putIfAbsent("stats_max", "1000");
+        env.putIfAbsent("stats_dump_millis", "0");
+        env.put("capture_file", "");
+        return builder.start();
+    }
+
+    private static String percentiles(List<Long> nanos) {
+        List<Long> sorted = new ArrayList<>(nanos);
+        Collections.sort(sorted);
+        if (sorted.isEmpty()) { return "p50_ms=0 p90_ms=0 p99_ms=0 max_ms=0 mean_ms=0"; }
+        long sum = 0;
+        for (Long value : sorted) { sum += value; }
+        return "p50_ms=" + millis(percentile(sorted, 0.5)) + " p90_ms=" + millis(percentile(sorted, 0.9)) +
+                " p99_ms=" + millis(percentile(sorted, 0.99)) + " max_ms=" + millis(sorted.get(sorted.size() - 1)) +
+                " mean_ms=" + millis(sum / sorted.size());
+    }
+
+    private static long percentile(List<Long> sorted, double pct) {
+        int idx = (int) Math.ceil(sorted.size() * pct) - 1;
+        return sorted.get(Math.max(0, Math.min(idx, sorted.size() - 1)));
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1_000_000.0);
+    }
+
+    private void run(String path, double speed) throws Exception {
+        List<String[]> inputs = new ArrayList<>();
+        List<Long> original = new ArrayList<>();
+        long originalErrors = 0;
+        // a capture cut off mid line ends with a partial frame, skip anything that does not parse
+        for (String line : Files.readAllLines(Paths.get(path))) {
+            String[] parts = line.split(",", 3);
+            if (parts.length < 3) { continue; }
+            try {
+                Long.parseLong(parts[0]);
+                if (parts[1].equals("i") && !parts[2].equals("boot")) {
+                    inputs.add(new String[]{parts[0], parts[2]});
+                } else if (parts[1].equals("o")) {
+                    // conn,qid,micros,status,rows
+                    String[] reply = parts[2].split(",");
+                    if (reply.length < 5) { continue; }
+                    if (reply[3].equals("ok")) {
+                        original.add(Long.parseLong(reply[2]) * 1000);
+                    } else {
+                        originalErrors++;
+                    }
+                }
+            } catch (NumberFormatException ignore) { }
+        }
+
+        Process child = spawn();
+        read(child.getInputStream(), false);
+        read(child.getErrorStream(), true);
+        stdin = new BufferedWriter(new OutputStreamWriter(child.getOutputStream()));
+
+        try {
+
+            stdin.write("boot");
+            stdin.newLine();
+            stdin.flush();
+            if (!booted.await(DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) { throw new Exception("boot timeout"); }
+
+            long begin = System.nanoTime();
+            long first = inputs.isEmpty() ? 0 : Long.parseLong(inputs.get(0)[0]);
+            for (String[] input : inputs) {
+                if (speed > 0) {
+                    long due = begin + (long) ((Long.parseLong(input[0]) - first) * 1000 / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) { TimeUnit.NANOSECONDS.sleep(wait); }
+                }
+                send(input[1]);
+            }
+
+            long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+            while ((!pending.isEmpty() || heldCount() > 0) && System.currentTimeMillis() < deadline) { Thread.sleep(10); }
+            long elapsed = System.nanoTime() - begin;
+
+            System.out.println("replay frames=" + inputs.size() + " speed=" + speed + " elapsed_ms=" + millis(elapsed));
+            // original is frame read to reply queued in the runtime, replayed adds output scheduling and the pipe
+            System.out.println("original(queued) count=" + original.size() + " errors=" + originalErrors + " " + percentiles(original));
+            System.out.println("replayed(read) count=" + latencies.size() + " errors=" + errors.size() + " unanswered=" + pending.size() + " unsent=" + heldCount() + " " + percentiles(latencies));
+
+        } finally {
+            stdin.close();
+            child.destroy();
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("usage: Replay <capture file> [speed]");
+            System.exit(1);
+        }
+        try {
+            double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+            new Replay().run(args[0], speed);
+        } catch (Exception e) {
+            System.err.println("replay failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+}
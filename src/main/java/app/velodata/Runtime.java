@@ -1,6 +1,7 @@
 package app.velodata;
 
 import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariConfigMXBean;
 import com.zaxxer.hikari.HikariDataSource;
 
 import java.io.PrintWriter;
@@ -8,16 +9,24 @@ import java.io.StringWriter;
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Runtime {
 
-  private ExecutorService exec;
-  private LinkedBlockingDeque<String> output;
+  private ThreadPoolExecutor exec;
+  private ThreadPoolExecutor borrowing;
+  private Outbox output;
   private HikariDataSource pool;
   private Queries queries;
+  private Stats stats;
+  private Capture capture;
+  private Notifications notifications;
+  private ScheduledExecutorService repeater;
 
   private final Map<Integer, Connection> connections = new ConcurrentHashMap<>();
   private final Set<Integer> txns = new ConcurrentSkipListSet<>();
+  private final Set<Integer> connecting = ConcurrentHashMap.newKeySet();
+  private final AtomicBoolean retiring = new AtomicBoolean(false);
 
   private String readQueryId(Integer connection, List<String> args) throws AppException {
     if (args.isEmpty()) { throw new AppException(connection, "read query id - wrong number of args"); }
@@ -46,6 +55,13 @@ public class Runtime {
     switch (command) {
       case "connect":
       case "query":
+      case "retry":
+      case "pquery":
+      case "pretry":
+      case "top":
+      case "resize":
+      case "listen":
+      case "unlisten":
       case "begin":
       case "commit":
       case "rollback":
@@ -56,6 +72,76 @@ public class Runtime {
     }
   }
 
+  private String readChannel(Integer connection, String requestId, List<String> args) throws AppException {
+    if (args.size() < 2) { throw new AppException(connection, requestId, "read channel - wrong number of args"); }
+    if (!args.get(1).startsWith("s")) { throw new AppException(connection, requestId, "read channel - missing 's' before base64"); }
+    String channel;
+    try {
+      channel = new String(Base64.getDecoder().decode(args.get(1).substring(1)));
+    } catch (Exception e) {
+      throw new AppException(connection, requestId, "read channel - base64 decode failed");
+    }
+    if (channel.isEmpty()) { throw new AppException(connection, requestId, "read channel - channel is empty"); }
+    return channel;
+  }
+
+  private int readTopCount(Integer connection, String requestId, List<String> args) throws AppException {
+    if (args.size() < 3) { throw new AppException(connection, requestId, "read top - wrong number of args"); }
+    try {
+      int count = Integer.parseInt(args.get(2));
+      if (count <= 0) { throw new AppException(connection, requestId, "read top - count must be positive"); }
+      return count;
+    } catch (NumberFormatException e) {
+      throw new AppException(connection, requestId, "read top - invalid count");
+    }
+  }
+
+  private Long readResizeArg(Integer connection, String requestId, String name, String arg) throws AppException {
+    if (arg.isEmpty()) { return null; }
+    try {
+      long value = Long.parseLong(arg);
+      if (value < 0) { throw new AppException(connection, requestId, "read resize - " + name + " must not be negative"); }
+      return value;
+    } catch (NumberFormatException e) {
+      throw new AppException(connection, requestId, "read resize - invalid " + name);
+    }
+  }
+
+  // in-flight queries keep their connection and thread, the pool and executor converge as work completes
+  private void resize(Integer connNum, String requestId, List<String> args) throws AppException {
+    if (args.size() < 5) { throw new AppException(connNum, requestId, "read resize - wrong number of args"); }
+    Long max = readResizeArg(connNum, requestId, "max", args.get(1));
+    Long threads = readResizeArg(connNum, requestId, "threads", args.get(2));
+    Long idleTimeout = readResizeArg(connNum, requestId, "idle_timeout_millis", args.get(3));
+    Long connTimeout = readResizeArg(connNum, requestId, "connection_timeout_millis", args.get(4));
+    if (max != null && max < 1) { throw new AppException(connNum, requestId, "read resize - max must be positive"); }
+    if (threads != null && threads < 2) { throw new AppException(connNum, requestId, "read resize - threads must be at least 2"); }
+
+    HikariConfigMXBean config = pool.getHikariConfigMXBean();
+    if (idleTimeout != null) { config.setIdleTimeout(idleTimeout); }
+    if (connTimeout != null) { config.setConnectionTimeout(connTimeout); }
+    if (max != null) {
+      boolean shrink = max < config.getMaximumPoolSize();
+      config.setMaximumPoolSize(max.intValue());
+      config.setMinimumIdle(max.intValue());
+      if (shrink && retiring.compareAndSet(false, true)) { repeater.submit(new RetireTask()); }
+      setPoolSize(borrowing, max.intValue());
+    }
+
+    if (threads != null) { setPoolSize(exec, threads.intValue()); }
+  }
+
+  // core and max are set in the order that keeps core <= max
+  private static void setPoolSize(ThreadPoolExecutor executor, int size) {
+    if (size > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(size);
+      executor.setCorePoolSize(size);
+    } else {
+      executor.setCorePoolSize(size);
+      executor.setMaximumPoolSize(size);
+    }
+  }
+
   private Integer readConnectionNumber(String input) throws AppException {
     if (input.split(",")[0].isEmpty()) { throw new AppException("input has no connection number"); }
     try {
@@ -66,6 +152,7 @@ public class Runtime {
   }
 
   private void onInput(String input) throws AppException {
+    if (capture != null) { capture.input(input); }
     if (input.equals("boot")) {
       queueOutput("boot");
       return;
@@ -86,12 +173,17 @@ public class Runtime {
       switch (command) {
         case "connect":
           if (connection != null) { throw new AppException(connNum, "preventing double connect"); }
+          // a second connect while getConnection is pending would overwrite and leak the first
+          if (!connecting.add(connNum)) { throw new AppException(connNum, "preventing double connect"); }
           exec.submit(() -> {
+            // cleared before the reply so a connect sent right after the reply is accepted
             try {
               Connection newConnection = pool.getConnection();
               connections.put(connNum, newConnection);
+              connecting.remove(connNum);
               queueOutput(connNum + "," + command);
             } catch (Exception e) {
+              connecting.remove(connNum);
               if (e.getMessage().contains("timed out")) {
                 queueError(connNum, null, "timeout exceeded when trying to connect");
               } else {
@@ -102,11 +194,49 @@ public class Runtime {
           break;
 
         case "query":
+        case "retry":
           if (connection == null) { throw new AppException(connNum, "query before connect"); }
           String queryId = readQueryId(connNum, args);
           String query = readQuery(connNum, queryId, args);
           args = args.subList(2, args.size());
-          queries.queue(connNum, queryId, connection, query, args);
+          queries.queue(connNum, queryId, connection, query, args, command.equals("retry"));
+          break;
+
+        case "pquery":
+        case "pretry":
+          String pqueryId = readQueryId(connNum, args);
+          String pquery = readQuery(connNum, pqueryId, args);
+          args = args.subList(2, args.size());
+          queries.queue(connNum, pqueryId, null, pquery, args, command.equals("pretry"));
+          break;
+
+        case "top":
+          String topId = readQueryId(connNum, args);
+          if (args.size() < 2) { throw new AppException(connNum, topId, "read top - wrong number of args"); }
+          int count = readTopCount(connNum, topId, args);
+          List<String> lines;
+          try {
+            lines = stats.top(args.get(1), count);
+          } catch (AppException e) {
+            throw new AppException(connNum, topId, e.getMessage());
+          }
+          for (String line : lines) { queueOutput(connNum + "," + topId + "," + line); }
+          break;
+
+        case "listen":
+          String listenId = readQueryId(connNum, args);
+          notifications.listen(connNum, listenId, readChannel(connNum, listenId, args));
+          break;
+
+        case "unlisten":
+          String unlistenId = readQueryId(connNum, args);
+          notifications.unlisten(connNum, unlistenId, readChannel(connNum, unlistenId, args));
+          break;
+
+        case "resize":
+          String resizeId = readQueryId(connNum, args);
+          resize(connNum, resizeId, args);
+          queueOutput(connNum + "," + resizeId + ",0,0");
           break;
 
         case "begin":
@@ -185,10 +315,12 @@ public class Runtime {
     } catch (Exception ignore) { }
   }
 
+  // connNum null is the runtime itself, negative connNum is the unpinned pool
   private void queueError(Integer connNum, String queryId, String error) {
     error = error.replace("\n", " ").replace(",", " ");
-    if (error.toLowerCase().contains("closed")) {
-      if (connNum >= 0) {
+    boolean pooled = connNum != null && connNum < 0;
+    if (!pooled && error.toLowerCase().contains("closed")) {
+      if (connNum != null) {
         handleClose(connNum);
         output.add("e:" + connNum + ",closed");
       } else {
@@ -198,7 +330,7 @@ public class Runtime {
       return;
     }
     String out = connNum + "";
-    if (connNum < 0) { out = "*"; }
+    if (connNum == null) { out = "*"; }
     if (queryId != null) { out += "," + queryId; }
     output.add("e:" + out + "," + error);
   }
@@ -211,11 +343,45 @@ public class Runtime {
   }
 
   private void onError(AppException e) {
-    Integer connNum = e.getConnection();
-    if (connNum == null) {
-      queueError(-1, e.getQuery(), e);
-    } else {
-      queueError(connNum, e.getQuery(), e);
+    queueError(e.getConnection(), e.getQuery(), e);
+  }
+
+  // evict only the connections above max as they become idle, the rest stay warm
+  // runs on repeater and only borrows idle connections, in use surplus is retired on a later pass once returned
+  private class RetireTask implements Runnable {
+    private static final long RETRY_MILLIS = 1000;
+
+    private boolean isSurplus() {
+      return pool.getHikariPoolMXBean().getTotalConnections() > pool.getHikariConfigMXBean().getMaximumPoolSize();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (isSurplus() && pool.getHikariPoolMXBean().getIdleConnections() > 0) {
+          Connection conn = pool.getConnection();
+          // max may have grown while borrowing, keep the connection warm then
+          if (isSurplus()) {
+            pool.evictConnection(conn);
+          } else {
+            conn.close();
+          }
+        }
+      } catch (Exception e) {
+        String error = e.getMessage();
+        if (error == null) { error = e.getClass().getName(); }
+        output.add("i:i,resize retire failed will retry: " + error.replace("\n", " "));
+      }
+
+      try {
+        if (isSurplus()) {
+          repeater.schedule(this, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+          return;
+        }
+        retiring.set(false);
+        // a shrink that landed after the last check saw retiring still set
+        if (isSurplus() && retiring.compareAndSet(false, true)) { repeater.submit(this); }
+      } catch (RejectedExecutionException ignore) { }
     }
   }
 
@@ -242,15 +408,31 @@ public class Runtime {
     }
   }
 
+  private class StatsDumpTask implements Runnable {
+    private static final int DUMP_COUNT = 10;
+
+    @Override
+    public void run() {
+      try {
+        for (String line : stats.dump("total_time", DUMP_COUNT)) {
+          output.add("i:i," + line.replace("\n", " "));
+        }
+      } catch (AppException e) {
+        onError(e);
+      }
+    }
+  }
+
   private void run() {
     int queryTimeout;
     long keepAliveMs;
+    long statsDumpMs;
 
     try {
 
       String threads = System.getenv("threads");
-      exec = Executors.newFixedThreadPool(Integer.parseInt(threads));
-      output = new LinkedBlockingDeque<>();
+      exec = (ThreadPoolExecutor) Executors.newFixedThreadPool(Integer.parseInt(threads));
+      output = new Outbox();
       exec.submit(new Output(output));
 
     } catch (NumberFormatException e) {
@@ -281,8 +463,25 @@ public class Runtime {
 
       String keepAlive = System.getenv("keep_alive_millis");
       keepAliveMs = Long.parseLong(keepAlive);
+
+      String statsMax = System.getenv("stats_max");
+      stats = new Stats(Integer.parseInt(statsMax));
+
+      String statsDump = System.getenv("stats_dump_millis");
+      statsDumpMs = Long.parseLong(statsDump);
+
+      String captureFile = System.getenv("capture_file");
+      if (captureFile != null && !captureFile.isEmpty()) {
+        String sample = System.getenv("capture_sample");
+        String redact = System.getenv("capture_redact");
+        capture = new Capture(captureFile, sample == null ? 1.0 : Double.parseDouble(sample), Boolean.parseBoolean(redact));
+      }
+
       pool = new HikariDataSource(config);
-      queries = new Queries(exec, output, connections, txns, queryTimeout);
+      notifications = new Notifications(output, url, config.getUsername(), config.getPassword());
+      // pool queries wait for a connection on their own executor sized to max
+      borrowing = (ThreadPoolExecutor) Executors.newFixedThreadPool(config.getMaximumPoolSize());
+      queries = new Queries(exec, borrowing, output, pool, connections, txns, stats, capture, queryTimeout);
 
     } catch (NumberFormatException e) {
       onError(new AppException("failed to parse env var to number"));
@@ -292,20 +491,35 @@ public class Runtime {
       return;
     }
 
-    ScheduledExecutorService repeater = Executors.newScheduledThreadPool(1);
+    ExecutorService capturing = Executors.newSingleThreadExecutor();
+    if (capture != null) {
+      capturing.submit(capture);
+      java.lang.Runtime.getRuntime().addShutdownHook(new Thread(capture::close));
+    }
+
+    ExecutorService notifying = Executors.newSingleThreadExecutor();
+    notifying.submit(notifications);
+
+    repeater = Executors.newScheduledThreadPool(1);
     if (keepAliveMs > 0) { repeater.scheduleAtFixedRate(new KeepAliveTask(queryTimeout), keepAliveMs, keepAliveMs, TimeUnit.MILLISECONDS); }
+    if (statsDumpMs > 0) { repeater.scheduleAtFixedRate(new StatsDumpTask(), statsDumpMs, statsDumpMs, TimeUnit.MILLISECONDS); }
 
     Scanner stdin = new Scanner(System.in);
     while (stdin.hasNext()) {
       try {
         onInput(stdin.nextLine());
       } catch (AppException e) {
+        if (capture != null) { capture.rejected(); }
         onError(e);
       }
     }
 
     exec.shutdownNow();
+    borrowing.shutdownNow();
     repeater.shutdownNow();
+    capturing.shutdownNow();
+    notifications.stop();
+    notifying.shutdownNow();
     pool.close();
   }
 
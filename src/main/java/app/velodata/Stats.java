@@ -0,0 +1,243 @@
+package app.velodata;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+public class Stats {
+
+    private static final String[] COLS = new String[]{
+            "query:text", "calls:int8", "errors:int8", "retries:int8", "total_time:float8", "mean_time:float8",
+            "max_time:float8", "p99_time:float8", "rows:int8", "bytes:int8"
+    };
+
+    private static final double EVICT_FRACTION = 0.05;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Object evicting = new Object();
+    private final int max;
+
+    public Stats(int max) {
+        this.max = max;
+    }
+
+    // 4 sub-buckets per power of two of micros, p99 is reported as bucket upper bound
+    private static class Histogram {
+        private static final int SUB_BITS = 2;
+        private static final int SUB = 1 << SUB_BITS;
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB);
+
+        private static int indexOf(long micros) {
+            if (micros < SUB) { return (int) Math.max(micros, 0); }
+            int exp = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) ((micros >>> (exp - SUB_BITS)) & (SUB - 1));
+            return (exp - SUB_BITS + 1) * SUB + sub;
+        }
+
+        private static long upperOf(int index) {
+            if (index < SUB) { return index; }
+            int exp = (index / SUB) + SUB_BITS - 1;
+            long sub = index % SUB;
+            return ((SUB + sub + 1) << (exp - SUB_BITS)) - 1;
+        }
+
+        void record(long micros) {
+            buckets.incrementAndGet(indexOf(micros));
+        }
+
+        long percentile(double pct) {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) { total += buckets.get(i); }
+            if (total <= 0) { return 0; }
+            long target = (long) Math.ceil(total * pct);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= target) { return upperOf(i); }
+            }
+            return upperOf(buckets.length() - 1);
+        }
+    }
+
+    private static class Entry {
+        final String query;
+        final LongAdder calls = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder retries = new LongAdder();
+        final LongAdder totalMicros = new LongAdder();
+        final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+        final LongAdder rows = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final Histogram histogram = new Histogram();
+
+        Entry(String query) { this.query = query; }
+
+        long mean() {
+            long count = calls.sum();
+            if (count <= 0) { return 0; }
+            return totalMicros.sum() / count;
+        }
+
+        long p99() {
+            return Math.min(histogram.percentile(0.99), maxMicros.get());
+        }
+    }
+
+    // SELECT * FROM t WHERE a = $1 AND b = 'x' AND c = 12 -> SELECT * FROM t WHERE a = ? AND b = ? AND c = ?
+    public static String fingerprint(String query) {
+        StringBuilder out = new StringBuilder(query.length());
+        int len = query.length();
+        boolean space = false;
+        for (int i = 0; i < len; i++) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = out.length() > 0;
+                continue;
+            }
+            if (space) { out.append(' '); space = false; }
+            if (c == '\'') {
+                int j = i + 1;
+                while (j < len) {
+                    if (query.charAt(j) == '\'' && j + 1 < len && query.charAt(j + 1) == '\'') { j += 2; continue; }
+                    if (query.charAt(j) == '\'') { break; }
+                    j++;
+                }
+                out.append('?');
+                i = j;
+            } else if (c == '"') {
+                int j = query.indexOf('"', i + 1);
+                if (j < 0) { j = len - 1; }
+                out.append(query, i, j + 1);
+                i = j;
+            } else if (c == '$' && i + 1 < len && Character.isDigit(query.charAt(i + 1))) {
+                while (i + 1 < len && Character.isDigit(query.charAt(i + 1))) { i++; }
+                out.append('?');
+            } else if (Character.isDigit(c) && !isIdentifierPart(out)) {
+                while (i + 1 < len && (Character.isDigit(query.charAt(i + 1)) || query.charAt(i + 1) == '.')) { i++; }
+                out.append('?');
+            } else {
+                out.append(c);
+            }
+        }
+        int end = out.length();
+        while (end > 0 && out.charAt(end - 1) == ';') { end--; }
+        return out.substring(0, end).trim();
+    }
+
+    private static boolean isIdentifierPart(StringBuilder out) {
+        if (out.length() <= 0) { return false; }
+        char prev = out.charAt(out.length() - 1);
+        return Character.isLetterOrDigit(prev) || prev == '_';
+    }
+
+    private Entry entry(String fingerprint) {
+        Entry entry = entries.get(fingerprint);
+        if (entry != null) { return entry; }
+        if (entries.size() >= max) {
+            synchronized (evicting) {
+                if (entries.size() >= max) { evict(); }
+            }
+        }
+        return entries.computeIfAbsent(fingerprint, Entry::new);
+    }
+
+    // evict the least called 5% in one pass, same as pg_stat_statements dealloc
+    private void evict() {
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        List<long[]> calls = new ArrayList<>(sorted.size());
+        for (int i = 0; i < sorted.size(); i++) { calls.add(new long[]{sorted.get(i).calls.sum(), i}); }
+        calls.sort(Comparator.comparingLong((long[] c) -> c[0]));
+        int count = Math.max(1, (int) (max * EVICT_FRACTION));
+        count += entries.size() - max;
+        for (int i = 0; i < Math.min(count, calls.size()); i++) {
+            Entry entry = sorted.get((int) calls.get(i)[1]);
+            entries.remove(entry.query, entry);
+        }
+    }
+
+    public void record(String fingerprint, boolean retry, long nanos, long rows, long bytes) {
+        Entry entry = entry(fingerprint);
+        long micros = nanos / 1000;
+        entry.calls.increment();
+        if (retry) { entry.retries.increment(); }
+        entry.totalMicros.add(micros);
+        entry.maxMicros.accumulate(micros);
+        entry.histogram.record(micros);
+        entry.rows.add(rows);
+        entry.bytes.add(bytes);
+    }
+
+    public void recordError(String fingerprint, boolean retry, long nanos) {
+        Entry entry = entry(fingerprint);
+        long micros = nanos / 1000;
+        entry.calls.increment();
+        entry.errors.increment();
+        if (retry) { entry.retries.increment(); }
+        entry.totalMicros.add(micros);
+        entry.maxMicros.accumulate(micros);
+        entry.histogram.record(micros);
+    }
+
+    // rejected before it ran, counted as an error without a call or time
+    public void recordRejected(String fingerprint, boolean retry) {
+        Entry entry = entry(fingerprint);
+        entry.errors.increment();
+        if (retry) { entry.retries.increment(); }
+    }
+
+    private ToLongFunction<Entry> readMetric(String metric) throws AppException {
+        switch (metric) {
+            case "calls": return (e) -> e.calls.sum();
+            case "errors": return (e) -> e.errors.sum();
+            case "retries": return (e) -> e.retries.sum();
+            case "total_time": return (e) -> e.totalMicros.sum();
+            case "mean_time": return Entry::mean;
+            case "max_time": return (e) -> e.maxMicros.get();
+            case "p99_time": return Entry::p99;
+            case "rows": return (e) -> e.rows.sum();
+            case "bytes": return (e) -> e.bytes.sum();
+            default:
+                throw new AppException("stats - invalid metric: " + metric);
+        }
+    }
+
+    private List<Entry> topEntries(String metric, int count) throws AppException {
+        ToLongFunction<Entry> read = readMetric(metric);
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort(Comparator.comparingLong(read).reversed());
+        return sorted.subList(0, Math.min(count, sorted.size()));
+    }
+
+    private static String millis(long micros) {
+        return Double.toString(micros / 1000.0);
+    }
+
+    // first line is update count, row count, cols + types, same as a query result
+    public List<String> top(String metric, int count) throws AppException {
+        List<Entry> top = topEntries(metric, count);
+        List<String> lines = new ArrayList<>(top.size() + 1);
+        lines.add("0," + top.size() + "," + String.join(",", COLS));
+        for (Entry entry : top) {
+            String query = "s" + Base64.getEncoder().encodeToString(entry.query.getBytes());
+            lines.add(query + "," + entry.calls.sum() + "," + entry.errors.sum() + "," + entry.retries.sum() + "," +
+                    millis(entry.totalMicros.sum()) + "," + millis(entry.mean()) + "," + millis(entry.maxMicros.get()) + "," +
+                    millis(entry.p99()) + "," + entry.rows.sum() + "," + entry.bytes.sum());
+        }
+        return lines;
+    }
+
+    public List<String> dump(String metric, int count) throws AppException {
+        List<Entry> top = topEntries(metric, count);
+        List<String> lines = new ArrayList<>(top.size());
+        for (Entry entry : top) {
+            lines.add("stats calls=" + entry.calls.sum() + " errors=" + entry.errors.sum() + " retries=" + entry.retries.sum() +
+                    " total_ms=" + millis(entry.totalMicros.sum()) + " mean_ms=" + millis(entry.mean()) +
+                    " max_ms=" + millis(entry.maxMicros.get()) + " p99_ms=" + millis(entry.p99()) +
+                    " rows=" + entry.rows.sum() + " bytes=" + entry.bytes.sum() + " query=" + entry.query);
+        }
+        return lines;
+    }
+}
@@ -1,6 +1,10 @@
 const test = require('tape')
 const { DateTime } = require('luxon')
 const { Pool } = require('./index.js')
+const fs = require('fs')
+const os = require('os')
+const path = require('path')
+const { execFile, spawn } = require('child_process')
 
 const timeout = 10 * 1000
 
@@ -14,8 +18,9 @@ function awaitBoot(pool) {
   return pool.boot()
 }
 
-function init(t, max=1, retry=0, ka=0, threads=null) {
+function init(t, max=1, retry=0, ka=0, threads=null, conf={}) {
   const pool = new Pool({
+    ...conf,
     java: process.env.java, jar: process.env.jar,
     jdbcUrl: process.env.jdbc_url,
     user: process.env.user, password: process.env.password,
@@ -1014,3 +1019,218 @@ test('testConnectAfterInflight', async function (t) {
   await q1
   await q2
 })
+
+test('testTop', async function (t) {
+  t.plan(5)
+  t.timeoutAfter(timeout)
+  const pool = init(t)
+  await awaitBoot(pool)
+
+  await pool.query('SELECT 1 AS num')
+  await pool.query('SELECT 2 AS num')
+  await pool.query('SELECT $1::int4 AS num', [3])
+
+  const rows = await pool.top('calls', 10)
+  const row = rows.find((row) => row.query === 'SELECT ? AS num')
+  t.ok(row, 'literals normalized to one fingerprint')
+  t.equal(row.calls, 2, 'calls counted')
+  t.equal(row.rows, 2, 'rows counted')
+  t.ok(rows.find((row) => row.query === 'SELECT ?::int4 AS num'), 'args normalized')
+
+  try {
+    await pool.top('bad')
+    t.fail('expected error thrown')
+  } catch (err) {
+    t.ok(err.message.includes('invalid metric'), 'invalid metric error')
+  }
+})
+
+test('testResize', async function (t) {
+  t.plan(5)
+  t.timeoutAfter(timeout)
+  const pool = init(t)
+  await awaitBoot(pool)
+
+  await pool.resize({ max: 3 })
+  t.equal(pool.clients.length, 3, 'grew to 3 clients')
+
+  const begin = Date.now()
+  await Promise.all([1, 2, 3].map(() => pool.query('SELECT pg_sleep(1)')))
+  t.ok((Date.now() - begin) < 2500, 'queries ran in parallel')
+
+  const inflight = pool.query('SELECT pg_sleep(1), 123 AS num')
+  await pool.resize({ max: 1 })
+  const data = await inflight
+  t.equal(data.rows[0].num, 123, 'inflight query not interrupted')
+  await sleep(500)
+  t.equal(pool.clients.length, 1, 'shrank to 1 client')
+
+  try {
+    await pool.resize({ bad: 1 })
+    t.fail('expected error thrown')
+  } catch (err) {
+    t.ok(err.message.includes('not implemented'), 'bad key error')
+  }
+})
+
+test('testPoolQueryUnpinned', async function (t) {
+  t.plan(4)
+  t.timeoutAfter(timeout)
+  const pool = init(t)
+  await awaitBoot(pool)
+
+  const pending = []
+  for (let i = 0; i < 20; i++) { pending.push(pool.query('SELECT $1::int4 AS num', [i])) }
+  const data = await Promise.all(pending)
+  t.equal(data[19].rows[0].num, 19, '20 queries shared 1 connection')
+
+  const client = await pool.connect()
+  t.ok(client.connected, 'connect after pool queries')
+  const q1 = pool.query('SELECT 123 AS num')
+  client.release()
+  t.equal((await q1).rows[0].num, 123, 'pool query after release')
+
+  try {
+    await pool.query('BEGIN')
+    t.fail('expected error thrown')
+  } catch (err) {
+    t.ok(err.message.includes('pool.connect()'), 'txn on pool rejected')
+  }
+})
+
+test('testCapture', async function (t) {
+  t.plan(4)
+  t.timeoutAfter(timeout)
+  const captureFile = path.join(os.tmpdir(), `capture-${Date.now()}.log`)
+  const pool = init(t, 1, 0, 0, null, { captureFile, captureRedact: true })
+  t.teardown(() => fs.rmSync(captureFile, { force: true }))
+  await awaitBoot(pool)
+
+  await pool.query('SELECT $1::text AS str', ['secret'])
+  await sleep(500)
+
+  const lines = fs.readFileSync(captureFile, 'utf8').trim().split('\n')
+  const input = lines.find((line) => line.split(',')[2] === '-1')
+  const reply = lines.find((line) => line.split(',')[1] === 'o')
+  t.ok(input, 'input frame captured')
+  t.ok(!input.includes(Buffer.from('secret').toString('base64')), 'arg redacted')
+  t.ok(reply, 'reply timing captured')
+  t.equal(reply.split(',')[5], 'ok', 'reply status captured')
+})
+
+test('testReplay', async function (t) {
+  t.plan(4)
+  t.timeoutAfter(2 * timeout)
+  const captureFile = path.join(os.tmpdir(), `replay-${Date.now()}.log`)
+  const pool = init(t, 1, 0, 0, null, { captureFile })
+  t.teardown(() => fs.rmSync(captureFile, { force: true }))
+  await awaitBoot(pool)
+
+  const client = await pool.connect()
+  try {
+    await client.query('BEGIN')
+    await client.query('SELECT $1::int AS num', [1])
+    await client.query('SELECT $1::int AS num', [2])
+    await client.query('COMMIT')
+  } finally {
+    client.release()
+  }
+  await pool.query('SELECT 123 AS num')
+  await sleep(500)
+
+  const args = ['-cp', process.env.jar, 'app.velodata.Replay', captureFile, '0']
+  const stdout = await new Promise((res, rej) => {
+    execFile(process.env.java, args, { env: process.env }, (err, stdout) => err ? rej(err) : res(stdout))
+  })
+  const replayed = stdout.split('\n').find((line) => line.startsWith('replayed'))
+  t.ok(replayed, 'replay summary printed')
+  t.ok(replayed.includes('count=3 '), 'all queries replayed')
+  t.ok(replayed.includes('errors=0 '), 'no errors, frames held until acks')
+  t.ok(replayed.includes('unsent=0 '), 'no frames left unsent')
+})
+
+test('testFairOutput', async function (t) {
+  t.plan(2)
+  t.timeoutAfter(20 * 1000)
+  const pool = init(t, 2)
+  await awaitBoot(pool)
+
+  // the big result is queued whole, so once its first rows arrive it is mid stream when small is sent
+  let lines = 0
+  const streaming = new Promise((res) => {
+    const listen = (line) => {
+      if (!line.startsWith('-1,') || ++lines < 10) { return }
+      pool.driver.stdout.removeListener('data', listen)
+      res()
+    }
+    pool.driver.stdout.on('data', listen)
+  })
+
+  const order = []
+  const big = pool.query(`SELECT repeat('x', 100) || n AS str FROM generate_series(1, 200000) n`)
+    .then((data) => { order.push('big'); return data })
+  await streaming
+  const small = pool.query('SELECT 123 AS num').then((data) => { order.push('small'); return data })
+
+  const [data] = await Promise.all([big, small])
+  t.equal(data.rows.length, 200000, 'big result complete')
+  t.equal(order[0], 'small', 'small result not blocked by big result')
+})
+
+test('testListenNotify', async function (t) {
+  t.plan(5)
+  t.timeoutAfter(timeout)
+  const pool = init(t)
+  await awaitBoot(pool)
+
+  const received = []
+  pool.on('notification', (note) => received.push(note))
+  await pool.listen('tests_channel')
+
+  await pool.query(`SELECT pg_notify('tests_channel', 'hello')`)
+  await pool.query(`SELECT pg_notify('tests_channel', '')`)
+  await sleep(1000)
+
+  t.equal(received.length, 2, '2 notifications received')
+  t.equal(received[0].channel, 'tests_channel', 'channel ok')
+  t.equal(received[0].payload, 'hello', 'payload ok')
+  t.equal(received[1].payload, '', 'empty payload ok')
+
+  await pool.unlisten('tests_channel')
+  await pool.query(`SELECT pg_notify('tests_channel', 'bye')`)
+  await sleep(1000)
+  t.equal(received.length, 2, 'no notifications after unlisten')
+})
+
+test('testListenExitOnStdinEnd', async function (t) {
+  t.plan(2)
+  t.timeoutAfter(timeout)
+  const env = {
+    ...process.env, max: '1', threads: '4', keep_alive_millis: '0',
+    stats_max: '10', stats_dump_millis: '0', capture_file: '',
+  }
+  const child = spawn(process.env.java, ['-jar', process.env.jar], { env })
+  t.teardown(() => child.kill())
+  const exited = new Promise((res) => child.once('exit', res))
+
+  let stdout = ''
+  let listening = false
+  const acked = new Promise((res) => {
+    child.stdout.on('data', (data) => {
+      stdout += data
+      if (!listening && stdout.includes('boot')) {
+        listening = true
+        const channel = Buffer.from('tests_channel').toString('base64')
+        child.stdin.write(`-1,listen,0,s${channel}\n`)
+      }
+      if (stdout.includes('-1,0,0,0')) { res() }
+    })
+  })
+  child.stdin.write('boot\n')
+
+  await acked
+  t.pass('listen acked')
+  child.stdin.end()
+  const code = await Promise.race([exited, sleep(5000).then(() => 'running')])
+  t.notEqual(code, 'running', 'process exits after stdin closes')
+})